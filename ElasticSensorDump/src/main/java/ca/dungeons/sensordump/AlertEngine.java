@@ -0,0 +1,232 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Watches every raw reading for spikes, instead of waiting for one to land in
+// a sampled document.  Rules are set up front and filed by sensor slot, and
+// each slot keeps a small ring of recent samples, so checking a reading doesn't
+// allocate anything.  When a rule fires we wait for a few more samples, then
+// hand the listener an alert document with the readings around the trigger.
+//
+// Readings come in from the sensor, GPS and audio threads, hence synchronized.
+class AlertEngine {
+
+    // Sensor slots
+    static final int SLOT_ACCEL_MAGNITUDE = 0;
+    static final int SLOT_GPS_ACCELERATION = 1;
+    static final int SLOT_LOUDNESS = 2;
+    private static final int SLOT_COUNT = 3;
+    private static final String[] SLOT_NAMES = {"accelerometer_magnitude", "gps_acceleration", "loudness"};
+
+    // Rule kinds
+    static final int RULE_ABOVE = 0;
+    static final int RULE_BELOW = 1;
+    static final int RULE_ZSCORE = 2;
+
+    // Samples kept per slot, and how many of them go in the alert either
+    // side of the trigger
+    private static final int WINDOW_SIZE = 32;
+    private static final int PRE_TRIGGER_SAMPLES = 16;
+    private static final int POST_TRIGGER_SAMPLES = 8;
+
+    // Slow sensors (GPS) don't get to hold an alert back longer than this
+    private static final long MAX_POST_TRIGGER_TIME = 1000;
+
+    // Don't fire the same rule again this soon
+    private static final long RULE_COOLDOWN = 5000;
+
+    // Z-score rules need this many samples before their average means anything
+    private static final int ZSCORE_WARMUP = 50;
+
+    interface AlertListener {
+        // Called on whichever thread fed the sample that completed the alert
+        void onAlert(JSONObject alert);
+    }
+
+    private static class Rule {
+        final String name;
+        final int kind;
+        final float threshold;
+        final float alpha;
+
+        // Running average and variance for z-score rules
+        float mean;
+        float variance;
+        int samplesSeen;
+        long lastFired = Long.MIN_VALUE / 2;
+
+        Rule(String name, int kind, float threshold, float alpha) {
+            this.name = name;
+            this.kind = kind;
+            this.threshold = threshold;
+            this.alpha = alpha;
+        }
+    }
+
+    private AlertListener listener;
+    private Rule[][] rules = new Rule[SLOT_COUNT][0];
+
+    private float[][] values = new float[SLOT_COUNT][WINDOW_SIZE];
+    private long[][] times = new long[SLOT_COUNT][WINDOW_SIZE];
+    private int[] sampleCounts = new int[SLOT_COUNT];
+
+    // The rule waiting on its post-trigger samples, per slot
+    private Rule[] pendingRules = new Rule[SLOT_COUNT];
+    private float[] pendingScores = new float[SLOT_COUNT];
+    private int[] pendingSamples = new int[SLOT_COUNT];
+    private int[] postSamplesLeft = new int[SLOT_COUNT];
+
+    AlertEngine(AlertListener listener) {
+        this.listener = listener;
+    }
+
+    // Fires when a reading goes over (RULE_ABOVE) or under (RULE_BELOW) the threshold
+    void addThresholdRule(int slot, String name, int kind, float threshold) {
+        addRule(slot, new Rule(name, kind, threshold, 0));
+    }
+
+    // Fires when a reading is more than threshold standard deviations away from
+    // its running average.  Smaller alpha means a longer memory.
+    void addZScoreRule(int slot, String name, float threshold, float alpha) {
+        addRule(slot, new Rule(name, RULE_ZSCORE, threshold, alpha));
+    }
+
+    // Set-up only, this is the one place we allocate
+    private synchronized void addRule(int slot, Rule rule) {
+        Rule[] slotRules = new Rule[rules[slot].length + 1];
+        System.arraycopy(rules[slot], 0, slotRules, 0, rules[slot].length);
+        slotRules[slotRules.length - 1] = rule;
+        rules[slot] = slotRules;
+    }
+
+    synchronized void onSample(int slot, long time, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return;
+        }
+
+        int sample = sampleCounts[slot]++;
+        values[slot][sample % WINDOW_SIZE] = value;
+        times[slot][sample % WINDOW_SIZE] = time;
+
+        // Every rule sees every sample so the running stats stay current,
+        // but only one alert per slot can be in the works at a time
+        boolean isPending = pendingRules[slot] != null;
+        Rule[] slotRules = rules[slot];
+        for (Rule rule : slotRules) {
+            float score = evaluate(rule, value);
+            if (pendingRules[slot] == null && time - rule.lastFired >= RULE_COOLDOWN
+                    && fires(rule, value, score)) {
+                rule.lastFired = time;
+                pendingRules[slot] = rule;
+                pendingScores[slot] = score;
+                pendingSamples[slot] = sample;
+                postSamplesLeft[slot] = POST_TRIGGER_SAMPLES;
+            }
+        }
+
+        if (isPending) {
+            long triggerTime = times[slot][pendingSamples[slot] % WINDOW_SIZE];
+            if (--postSamplesLeft[slot] <= 0 || time - triggerTime >= MAX_POST_TRIGGER_TIME) {
+                emitAlert(slot);
+            }
+        }
+    }
+
+    // Send any alert that has waited out its post-trigger time, for when the
+    // sensor it's waiting on has stopped sending.  Cheap enough to call on
+    // every sensor event.
+    synchronized void flushExpired(long now) {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (pendingRules[slot] != null
+                    && now - times[slot][pendingSamples[slot] % WINDOW_SIZE] >= MAX_POST_TRIGGER_TIME) {
+                emitAlert(slot);
+            }
+        }
+    }
+
+    // Send every pending alert with whatever samples it has, when logging stops
+    synchronized void flushAll() {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (pendingRules[slot] != null) {
+                emitAlert(slot);
+            }
+        }
+    }
+
+    // Returns the z-score for z-score rules (updating the running stats as it
+    // goes), or just the value for threshold rules
+    private static float evaluate(Rule rule, float value) {
+        if (rule.kind != RULE_ZSCORE) {
+            return value;
+        }
+
+        float score = 0;
+        if (rule.samplesSeen >= ZSCORE_WARMUP && rule.variance > 0) {
+            score = (value - rule.mean) / (float) Math.sqrt(rule.variance);
+        }
+
+        // Exponentially weighted average and variance
+        float diff = value - rule.mean;
+        float increment = rule.alpha * diff;
+        if (rule.samplesSeen == 0) {
+            rule.mean = value;
+        } else {
+            rule.mean += increment;
+            rule.variance = (1 - rule.alpha) * (rule.variance + diff * increment);
+        }
+        rule.samplesSeen++;
+        return score;
+    }
+
+    private static boolean fires(Rule rule, float value, float score) {
+        switch (rule.kind) {
+            case RULE_ABOVE:
+                return value > rule.threshold;
+            case RULE_BELOW:
+                return value < rule.threshold;
+            default:
+                return Math.abs(score) > rule.threshold;
+        }
+    }
+
+    // Slow path, only runs when something actually happened
+    private void emitAlert(int slot) {
+        Rule rule = pendingRules[slot];
+        int trigger = pendingSamples[slot];
+        pendingRules[slot] = null;
+
+        int newest = sampleCounts[slot] - 1;
+        int oldest = Math.max(Math.max(0, newest - WINDOW_SIZE + 1), trigger - PRE_TRIGGER_SAMPLES);
+        long triggerTime = times[slot][trigger % WINDOW_SIZE];
+
+        try {
+            JSONArray windowValues = new JSONArray();
+            JSONArray windowOffsets = new JSONArray();
+            for (int sample = oldest; sample <= newest; sample++) {
+                windowValues.put((double) values[slot][sample % WINDOW_SIZE]);
+                windowOffsets.put(times[slot][sample % WINDOW_SIZE] - triggerTime);
+            }
+
+            SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+            JSONObject alert = new JSONObject();
+            alert.put("@timestamp", logDateFormat.format(new Date(triggerTime)));
+            alert.put("alert", rule.name);
+            alert.put("alert_sensor", SLOT_NAMES[slot]);
+            alert.put("alert_value", (double) values[slot][trigger % WINDOW_SIZE]);
+            alert.put("alert_threshold", (double) rule.threshold);
+            if (rule.kind == RULE_ZSCORE) {
+                alert.put("alert_zscore", (double) pendingScores[slot]);
+            }
+            alert.put("alert_window", windowValues);
+            alert.put("alert_window_offsets_ms", windowOffsets);
+            listener.onAlert(alert);
+        } catch (JSONException e) {
+            Log.v("Alert Error", e.toString());
+        }
+    }
+}
@@ -11,6 +11,9 @@ class AudioLogger {
     float loudness = 0;
     float frequency = 0;
 
+    // Set while alerts are turned on
+    volatile AlertEngine alertEngine;
+
     private final int SAMPLE_RATE = 44100; // The sampling rate
     private boolean isRunning = false; // Indicates if recording / playback should stop
 
@@ -90,6 +93,12 @@ class AudioLogger {
                     // value
                     loudness = (highest - lowest) / 65536 * 100;
 
+                    // Every buffer gets checked for loud events, not just the sampled ones
+                    AlertEngine engine = alertEngine;
+                    if (engine != null) {
+                        engine.onSample(AlertEngine.SLOT_LOUDNESS, System.currentTimeMillis(), loudness);
+                    }
+
                     // Take the count of the peaks in the time that we had based on the sample
                     // rate to calculate frequency
                     float seconds = (float) audioBuffer.length / (float) SAMPLE_RATE;
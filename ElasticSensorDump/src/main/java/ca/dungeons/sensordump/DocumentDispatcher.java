@@ -0,0 +1,73 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Fans each document out to every registered sink.
+class DocumentDispatcher {
+
+    long documentsPublished = 0;
+
+    private List<DocumentSink> sinks = new ArrayList<>();
+
+    // Only set when the user wants sparse documents
+    private SparseDocumentEncoder sparseEncoder;
+
+    void addSink(DocumentSink sink) {
+        sinks.add(sink);
+    }
+
+    void setSparseEncoder(SparseDocumentEncoder sparseEncoder) {
+        this.sparseEncoder = sparseEncoder;
+    }
+
+    void start() {
+        for (DocumentSink sink : sinks) {
+            sink.start();
+        }
+    }
+
+    void stop() {
+        for (DocumentSink sink : sinks) {
+            sink.stop();
+        }
+    }
+
+    void publish(JSONObject document, int lane) throws JSONException {
+        // The caller keeps updating its document after we return, and the sinks
+        // read theirs from other threads.  Hand them all one shared copy.
+        // The sparse encoder already builds a fresh document, so that'll do.
+        JSONObject snapshot;
+        if (sparseEncoder != null) {
+            snapshot = sparseEncoder.encode(document);
+        } else {
+            snapshot = snapshot(document);
+        }
+        documentsPublished++;
+        for (DocumentSink sink : sinks) {
+            sink.offer(snapshot, lane);
+        }
+    }
+
+    // Alerts are their own documents, built fresh and never touched again, so
+    // they skip the copy and the sparse encoder and go straight to the front.
+    // Safe to call from any thread.
+    void publishAlert(JSONObject alert) {
+        for (DocumentSink sink : sinks) {
+            sink.offer(alert, DocumentSink.LANE_URGENT);
+        }
+    }
+
+    private static JSONObject snapshot(JSONObject document) throws JSONException {
+        String[] names = new String[document.length()];
+        int i = 0;
+        Iterator<String> keys = document.keys();
+        while (keys.hasNext()) {
+            names[i++] = keys.next();
+        }
+        return new JSONObject(document, names);
+    }
+}
@@ -0,0 +1,23 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+
+// Anything that wants a copy of the sensor documents implements this.  The
+// dispatcher hands every document to every sink, so offer() has to return
+// right away.  A slow sink should drop documents rather than hold up the
+// sensor thread (or the other sinks).
+interface DocumentSink {
+
+    // Priority lanes, most urgent first.  Fresh locations and alerts go in the
+    // urgent lane, regular sensor documents in the live one.  Retries are the
+    // sink's own business, so there's no lane for those out here.
+    int LANE_URGENT = 0;
+    int LANE_LIVE = 1;
+
+    // Queue up a document for delivery.  Returns false if it was dropped.
+    boolean offer(JSONObject document, int lane);
+
+    void start();
+
+    void stop();
+}
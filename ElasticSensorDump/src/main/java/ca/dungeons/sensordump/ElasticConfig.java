@@ -0,0 +1,98 @@
+package ca.dungeons.sensordump;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Everything the indexer needs to talk to elastic, read out of the preferences
+// in one go.  Nothing in here changes once it's built: when the settings change
+// we build a new one and swap it in, so the sender never sees half an update.
+final class ElasticConfig {
+
+    // This was configurable in early versions.  With multiple types goign away in
+    // Elastic 6.0, I've decided to make a single type and call it ESD.  Users
+    // can now use the Tag option to create a string to constrain their data during
+    // parallel ingests.
+    static final String ES_TYPE = "esd";
+
+    final int bulkSize;
+
+    // One base URL per node, e.g. http://host:9200/
+    final String[] nodeURLs;
+
+    // Prebuilt so we're not gluing strings together for every request.
+    // The paths go on the end of whichever node URL we're sending to.
+    final String indexPath;
+    final String bulkPath;
+    // Each document's _id goes on the end of this, see ElasticSearchIndexer
+    final String bulkActionPrefix;
+
+    // Null when no user/pass is configured
+    final String authHeader;
+
+    private ElasticConfig(String[] nodeURLs, String index, int bulkSize, String authHeader) {
+        this.nodeURLs = nodeURLs;
+        this.bulkSize = bulkSize;
+        this.indexPath = index + "/";
+        this.bulkPath = "_bulk";
+        this.bulkActionPrefix = "{\"index\":{\"_index\":\"" + index + "\",\"_type\":\"" + ES_TYPE + "\",\"_id\":\"";
+        this.authHeader = authHeader;
+    }
+
+    static ElasticConfig fromPreferences(SharedPreferences sharedPrefs) {
+        // Extract config information to build connection strings
+        String esHost = sharedPrefs.getString("host", "localhost");
+        String esPort = sharedPrefs.getString("port", "9200");
+        String esIndex = sharedPrefs.getString("index", "sensor_dump");
+        boolean esSSL = sharedPrefs.getBoolean("ssl", false);
+        String esUsername = sharedPrefs.getString("user", "");
+        String esPassword = sharedPrefs.getString("pass", "");
+
+        // Tag the current date stamp on the index name if set in preferences
+        // Thanks GlenRSmith for this idea
+        if (sharedPrefs.getBoolean("index_date", false)) {
+            Date logDate = new Date(System.currentTimeMillis());
+            SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyyMMdd");
+            String dateString = logDateFormat.format(logDate);
+            esIndex = esIndex + "-" + dateString;
+        }
+
+        int bulkSize;
+        try {
+            bulkSize = Math.max(1, Integer.parseInt(sharedPrefs.getString("bulk_size", "100")));
+        } catch (NumberFormatException e) {
+            bulkSize = 100;
+        }
+
+        // The host setting can list several nodes, "es1, es2:9201".  Nodes
+        // without a port get the one from the port setting.
+        String[] hosts = esHost.split(",");
+        List<String> nodeURLs = new ArrayList<>();
+        for (String host : hosts) {
+            host = host.trim();
+            if (host.length() == 0) {
+                continue;
+            }
+            if (host.indexOf(':') < 0) {
+                host = host + ":" + esPort;
+            }
+            nodeURLs.add((esSSL ? "https://" : "http://") + host + "/");
+        }
+        if (nodeURLs.isEmpty()) {
+            nodeURLs.add((esSSL ? "https://" : "http://") + "localhost:" + esPort + "/");
+        }
+
+        // Send authentication if required
+        String authHeader = null;
+        if (esUsername.length() > 0 && esPassword.length() > 0) {
+            byte[] credentials = (esUsername + ":" + esPassword).getBytes(Charset.forName("UTF-8"));
+            authHeader = "Basic " + Base64.encodeToString(credentials, Base64.NO_WRAP);
+        }
+
+        return new ElasticConfig(nodeURLs.toArray(new String[nodeURLs.size()]), esIndex, bulkSize, authHeader);
+    }
+}
@@ -0,0 +1,125 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads requests over the elastic nodes the user listed.  A node that fails
+// a request is benched straight away, and probe() lets it back in once it
+// answers again.  This way one node restarting doesn't take the whole app
+// down with it.
+class ElasticNodePool {
+
+    private static int PROBE_TIMEOUT = 1000;
+
+    static class Node {
+        final String baseURL;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile boolean isHealthy = true;
+
+        Node(String baseURL) {
+            this.baseURL = baseURL;
+        }
+    }
+
+    private final Node[] nodes;
+    private final String[] baseURLs;
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    ElasticNodePool(String[] baseURLs) {
+        this.baseURLs = baseURLs;
+        nodes = new Node[baseURLs.length];
+        for (int i = 0; i < baseURLs.length; i++) {
+            nodes[i] = new Node(baseURLs[i]);
+        }
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    // In the order the URLs were given
+    Node node(int index) {
+        return nodes[index];
+    }
+
+    boolean hasSameNodes(String[] otherURLs) {
+        return Arrays.equals(baseURLs, otherURLs);
+    }
+
+    // Pick the healthy node with the fewest requests in flight, taking turns
+    // when there's a tie.  If everything is benched we still hand out a node
+    // rather than sit on the data, since the probe may just not have caught up.
+    // Returns null once every node has been tried.
+    Node acquire(Collection<Node> tried) {
+        int start = nextNode.getAndIncrement() & Integer.MAX_VALUE;
+        Node best = null;
+        Node fallback = null;
+
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[(start + i) % nodes.length];
+            if (tried.contains(node)) {
+                continue;
+            }
+            if (!node.isHealthy) {
+                if (fallback == null) {
+                    fallback = node;
+                }
+                continue;
+            }
+            if (best == null || node.outstanding.get() < best.outstanding.get()) {
+                best = node;
+            }
+        }
+
+        if (best == null) {
+            best = fallback;
+        }
+        if (best != null) {
+            best.outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    void release(Node node, boolean isSuccess) {
+        node.outstanding.decrementAndGet();
+        if (isSuccess) {
+            node.isHealthy = true;
+        } else if (node.isHealthy) {
+            node.isHealthy = false;
+            Log.v("Elastic Node", "Node down: " + node.baseURL);
+        }
+    }
+
+    // Knock on the door of every benched node with a cheap HEAD request
+    void probe(String authHeader) {
+        for (Node node : nodes) {
+            if (node.isHealthy) {
+                continue;
+            }
+            try {
+                HttpURLConnection httpCon = (HttpURLConnection) new URL(node.baseURL).openConnection();
+                try {
+                    httpCon.setConnectTimeout(PROBE_TIMEOUT);
+                    httpCon.setReadTimeout(PROBE_TIMEOUT);
+                    httpCon.setRequestMethod("HEAD");
+                    if (authHeader != null) {
+                        httpCon.setRequestProperty("Authorization", authHeader);
+                    }
+                    if (httpCon.getResponseCode() < 500) {
+                        node.isHealthy = true;
+                        Log.v("Elastic Node", "Node back up: " + node.baseURL);
+                    }
+                } finally {
+                    httpCon.disconnect();
+                }
+            } catch (IOException e) {
+                // Still down, we'll try again next round
+            }
+        }
+    }
+}
@@ -1,262 +1,219 @@
 package ca.dungeons.sensordump;
 
-import android.content.SharedPreferences;
 import android.util.Log;
-import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.net.Authenticator;
 import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
 import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-class ElasticSearchIndexer {
+class ElasticSearchIndexer extends QueuedSink {
 
+    // We keep up to this many documents in the backlog when we can't reach elastic.
+    // This is to handle occasional disconnects in areas where we may not have
+    // data or connection to the carrier network.
     private static int MAX_FAILED_DOCS = 1000;
+    private static long BULK_LINGER_TIME = 1000;
     private static int LAST_RESPONSE_CODE = 299;
+    private static long PROBE_INTERVAL = 5000;
 
-    long failedIndex = 0;
-    long indexRequests = 0;
-    long indexSuccess = 0;
-    private String esHost;
-    private String esPort;
-    private String esIndex;
-    private String esTag;
-    private String esType;
-    private String esUsername;
-    private String esPassword;
-    private boolean esSSL;
-
-    // We store all the failed index operations here, so we can replay them
-    // at a later time.  This is to handle occasional disconnects in areas where
-    // we may not have data or connection to the carrier network.
-    private List<String> failedJSONDocs = new ArrayList<>();
-    private boolean isLastIndexSuccessful = false;
-
-    // Control variable to prevent sensors from being written before mapping created
-    // Multi-threading is fun :(
-    private boolean isCreatingMapping = true;
-
-    // Another control variable, because threading is hate.
-    private boolean isRetryingFailedIndexes = false;
-
-
-    ElasticSearchIndexer() {
-    }
+    // The config and the nodes it points at, kept together so a batch or a
+    // probe never sees the new node list with the old paths or credentials
+    private static final class Cluster {
+        final ElasticConfig config;
+        final ElasticNodePool pool;
 
-    void updateURL(SharedPreferences sharedPrefs) {
-        // Extract config information to build connection strings
-        esHost = sharedPrefs.getString("host", "localhost");
-        esPort = sharedPrefs.getString("port", "9200");
-        esIndex = sharedPrefs.getString("index", "sensor_dump");
-        esTag = sharedPrefs.getString("tag", "phone_data");
-        esSSL = sharedPrefs.getBoolean("ssl", false);
-        esUsername = sharedPrefs.getString("user", "");
-        esPassword = sharedPrefs.getString("pass", "");
-
-        // This was configurable in early versions.  With multiple types goign away in
-        // Elastic 6.0, I've decided to make a single type and call it ESD.  Users
-        // can now use the Tag option to create a string to constrain their data during
-        // parallel ingests.
-        esType = "esd";
-
-
-        // Tag the current date stamp on the index name if set in preferences
-        // Thanks GlenRSmith for this idea
-        if (sharedPrefs.getBoolean("index_date", false)) {
-            Date logDate = new Date(System.currentTimeMillis());
-            SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyyMMdd");
-            String dateString = logDateFormat.format(logDate);
-            esIndex = esIndex + "-" + dateString;
+        Cluster(ElasticConfig config, ElasticNodePool pool) {
+            this.config = config;
+            this.pool = pool;
         }
+    }
+
+    // Swapped out whole whenever the settings change
+    private volatile Cluster cluster;
+    private ScheduledExecutorService prober;
+
+    // Goes in front of every document _id from this session
+    private final String sessionId = Long.toString(System.currentTimeMillis(), 36);
+
+    // Mapping has to exist before the first sensor document goes into an index.
+    // A new node pool may well be a different cluster, so it gets the mapping
+    // again too.  Worker thread only.
+    private ElasticNodePool mappedPool;
+    private String mappedIndexPath;
 
+
+    ElasticSearchIndexer(ElasticConfig config) {
+        super("Elastic", MAX_FAILED_DOCS, config.bulkSize, BULK_LINGER_TIME);
+        this.cluster = new Cluster(config, new ElasticNodePool(config.nodeURLs));
     }
 
-    // Stop/start should reset counters
-    public void resetCounters() {
-        failedIndex = 0;
-        indexRequests = 0;
-        indexSuccess = 0;
+    // Safe to call while we're running.  The next batch goes to the new place.
+    // Nodes keep their health when the node list hasn't changed.
+    void updateConfig(ElasticConfig newConfig) {
+        ElasticNodePool pool = cluster.pool;
+        if (!pool.hasSameNodes(newConfig.nodeURLs)) {
+            pool = new ElasticNodePool(newConfig.nodeURLs);
+        }
+        cluster = new Cluster(newConfig, pool);
+        setBatchSize(newConfig.bulkSize);
     }
 
-    private void callElasticAPI(final String verb, final String url,
-                                final String jsonData, final boolean isBulk) {
-        indexRequests++;
+    ElasticNodePool nodePool() {
+        return cluster.pool;
+    }
 
-        // Send authentication if required
-        if (esUsername.length() > 0 && esPassword.length() > 0) {
-            Authenticator.setDefault(new Authenticator() {
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(esUsername, esPassword.toCharArray());
-                }
-            });
-        }
+    @Override
+    public void start() {
+        super.start();
 
-        // Spin up a thread for http connection
-        Runnable r = new Runnable() {
+        // Check on the benched nodes every so often
+        prober = Executors.newSingleThreadScheduledExecutor();
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
             public void run() {
+                Cluster current = cluster;
+                current.pool.probe(current.config.authHeader);
+            }
+        }, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
-                HttpURLConnection httpCon;
-                OutputStreamWriter osw;
-                URL u;
-
-                try {
-                    u = new URL(url);
-                    httpCon = (HttpURLConnection) u.openConnection();
-                    httpCon.setConnectTimeout(2000);
-                    httpCon.setReadTimeout(2000);
-                    httpCon.setDoOutput(true);
-                    httpCon.setRequestMethod(verb);
-                    osw = new OutputStreamWriter(httpCon.getOutputStream());
-                    osw.write(jsonData);
-                    osw.close();
-                    httpCon.getInputStream();
-
-                    // Something bad happened. I expect only the finest of 200's
-                    int responseCode = httpCon.getResponseCode();
-                    if (responseCode > LAST_RESPONSE_CODE) {
-                        if (!isCreatingMapping) {
-                            failedIndex++;
-                            isLastIndexSuccessful = false;
-                        }
-                    } else {
-                        isLastIndexSuccessful = true;
-                        indexSuccess++;
-                    }
-
-                    httpCon.disconnect();
-
-                } catch (Exception e) {
-
-                    // Probably a connection error.  Maybe.  Lets just buffer up the json
-                    // docs so we can try them again later
-                    if (e instanceof IOException) {
-                        if (!isCreatingMapping && !isBulk) {
-                            isLastIndexSuccessful = false;
-                            // Store up to MAX_FAILED_DOCS worth of data before dumping it
-                            if(failedJSONDocs.size() < MAX_FAILED_DOCS) {
-                                failedJSONDocs.add(jsonData);
-                            }
-                        }
-                    }
-
-                    // Only show errors for index requests, not the mapping request
-                    if (isCreatingMapping) {
-                        isCreatingMapping = false;
-                    } else {
-                        Log.v("Index Request", "" + indexRequests);
-                        Log.v("Fail Reason", e.toString());
-                        Log.v("Fail URL", url);
-                        Log.v("Fail Data", jsonData);
-                        failedIndex++;
-                    }
-                }
-                // We are no longer creating the mapping.  Time for sensor readings!
-                if (isCreatingMapping) {
-                    isCreatingMapping = false;
-                }
+    @Override
+    public void stop() {
+        super.stop();
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+    }
 
-                // Bulk success!
-                if (isBulk) {
-                    // Clear failed log and update our stats
-                    failedIndex -= failedJSONDocs.size();
-                    indexSuccess += failedJSONDocs.size();
-                    failedJSONDocs.clear();
-                    isRetryingFailedIndexes = false;
+    // Try the request on each node in turn until one of them takes it.  A node
+    // that can't be reached or answers with a 5xx gets benched, and the same
+    // request goes to the next one, so nothing is lost on failover.
+    private int callCluster(final String verb, final String path, final String jsonData,
+                            final Cluster cluster) throws IOException {
+        ElasticConfig config = cluster.config;
+        ElasticNodePool pool = cluster.pool;
+        List<ElasticNodePool.Node> tried = new ArrayList<>(pool.size());
+        IOException lastError = null;
+
+        ElasticNodePool.Node node;
+        while ((node = pool.acquire(tried)) != null) {
+            tried.add(node);
+            boolean isNodeHealthy = false;
+            try {
+                int responseCode = callElasticAPI(verb, node.baseURL + path, jsonData, config);
+                if (responseCode < 500) {
+                    isNodeHealthy = true;
+                    return responseCode;
                 }
+                lastError = new IOException("Node " + node.baseURL + " answered " + responseCode);
+            } catch (IOException e) {
+                lastError = e;
+            } finally {
+                pool.release(node, isNodeHealthy);
             }
-        };
-
-        // Only allow posts if we're not creating mapping
-        if (isCreatingMapping) {
-            if (verb.equals("PUT")) {
-                Thread t = new Thread(r);
-                t.start();
-            }
-        } else {
-            // We're not creating a mapping, just go nuts
-            Thread t = new Thread(r);
-            t.start();
         }
+
+        throw lastError != null ? lastError : new IOException("No elastic nodes configured");
     }
 
-    // Build the URL based on the config data
-    private String buildURL() {
-        if (esSSL) {
-            return "https://" + esHost + ":" + esPort + "/" + esIndex + "/";
-        } else {
-            return "http://" + esHost + ":" + esPort + "/" + esIndex + "/";
+    // Runs on the sink's worker thread, so it's fine to block here
+    private int callElasticAPI(final String verb, final String url, final String jsonData,
+                               final ElasticConfig config) throws IOException {
+
+        HttpURLConnection httpCon = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (config.authHeader != null) {
+                httpCon.setRequestProperty("Authorization", config.authHeader);
+            }
+            httpCon.setConnectTimeout(2000);
+            httpCon.setReadTimeout(2000);
+            httpCon.setDoOutput(true);
+            httpCon.setRequestMethod(verb);
+            OutputStreamWriter osw = new OutputStreamWriter(httpCon.getOutputStream());
+            osw.write(jsonData);
+            osw.close();
+
+            int responseCode = httpCon.getResponseCode();
+            if (responseCode <= LAST_RESPONSE_CODE) {
+                InputStream response = httpCon.getInputStream();
+                response.close();
+            }
+            return responseCode;
+        } finally {
+            httpCon.disconnect();
         }
     }
 
     // Send mapping to elastic for sensor index using PUT
     // I'm sorry this is ugly.
-    private void createMapping() {
-        String es_mapping = "{\"mappings\": {\"esd\": {\"dynamic_templates\": [{\"long_to_float\": {\"match_mapping_type\": \"long\",\"mapping\": {\"type\": \"float\"}}}],\"properties\":{\"start_location\":{\"type\":\"geo_point\"},\"location\":{\"type\":\"geo_point\"},\"tag\":{\"type\":\"keyword\"},\"gps_provider\":{\"type\":\"keyword\"}}}}}";
+    private void createMapping(Cluster cluster) throws IOException {
+        ElasticConfig config = cluster.config;
+        String es_mapping = "{\"mappings\": {\"esd\": {\"dynamic_templates\": [{\"long_to_float\": {\"match_mapping_type\": \"long\",\"mapping\": {\"type\": \"float\"}}}],\"properties\":{\"start_location\":{\"type\":\"geo_point\"},\"location\":{\"type\":\"geo_point\"},\"tag\":{\"type\":\"keyword\"},\"gps_provider\":{\"type\":\"keyword\"},\"keyframe\":{\"type\":\"boolean\"},\"alert\":{\"type\":\"keyword\"},\"alert_sensor\":{\"type\":\"keyword\"}}}}}";
         Log.v("Mapping", es_mapping);
-        callElasticAPI("PUT", buildURL(), es_mapping, false);
-    }
-
-    // Spam those failed docs!
-    // Maybe this should be a bulk operation... one day
-    private void indexFailedDocuments() {
-        String url;
-        StringBuilder bulkDataList = new StringBuilder();
 
-        // Bulk index url
-        if (esSSL) {
-            url = "https://" + esHost + ":" + esPort + "/_bulk";
-        } else {
-            url = "http://" + esHost + ":" + esPort + "/_bulk";
-        }
+        // A 400 here just means the index is already there, which is fine
+        callCluster("PUT", config.indexPath, es_mapping, cluster);
+        mappedPool = cluster.pool;
+        mappedIndexPath = config.indexPath;
+    }
 
-        for (String failedJsonDoc : failedJSONDocs) {
-            bulkDataList.append("{\"index\":{\"_index\":\"").append(esIndex)
-                    .append("\",\"_type\":\"").append(esType).append("\"}}\n");
-            bulkDataList.append(failedJsonDoc).append("\n");
+    // 64 bit FNV-1a.  Every document carries its own @timestamp, so two
+    // different documents won't end up with the same hash.
+    private static long hash(String json) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < json.length(); i++) {
+            hash ^= json.charAt(i);
+            hash *= 0x100000001b3L;
         }
-
-        String bulkData = bulkDataList.toString();
-
-        Log.v("Bulk Data", bulkData);
-        callElasticAPI("POST", url, bulkData, true);
+        return hash;
     }
 
-    // Send JSON data to elastic using POST
-    void index(JSONObject joIndex) {
+    // Send a batch of JSON documents to elastic with a single bulk request
+    @Override
+    boolean deliver(List<JSONObject> batch) throws IOException {
 
-        // Create the mapping on first request
-        if (isCreatingMapping && indexRequests == 0) {
-            createMapping();
+        // Stick with one config for the whole batch
+        Cluster cluster = this.cluster;
+        ElasticConfig config = cluster.config;
+
+        // Create the mapping on the first request to each index on each cluster
+        if (cluster.pool != mappedPool || !config.indexPath.equals(mappedIndexPath)) {
+            createMapping(cluster);
         }
 
-        // Before indexing, make sure the user tag is in the document if they've made one
-        try {
-            if(!esTag.equals("")) {
-                joIndex.put("tag", esTag);
-            }
-        } catch (Exception e) {
-            Log.v("JSON Logging error", e.toString());
+        // A node can time out after it has already indexed the batch, and then
+        // the same batch goes to the next node or back to the backlog.  Giving
+        // each document an _id from its content means a resend just overwrites
+        // what's there instead of adding a duplicate.
+        StringBuilder bulkDataList = new StringBuilder();
+        for (JSONObject document : batch) {
+            String json = document.toString();
+            bulkDataList.append(config.bulkActionPrefix).append(sessionId).append('-')
+                    .append(Long.toHexString(hash(json))).append("\"}}\n");
+            bulkDataList.append(json).append("\n");
         }
 
-        String jsonData = joIndex.toString();
-        String url = buildURL() + esType + "/";
+        int responseCode = callCluster("POST", config.bulkPath, bulkDataList.toString(), cluster);
 
-        // If we have some data, it's good to post
-        if (jsonData != null) {
-            callElasticAPI("POST", url, jsonData, false);
+        // Elastic is overloaded, keep the batch and try it again
+        if (responseCode == 429) {
+            throw new IOException("Bulk request failed with " + responseCode);
         }
 
-        // Try it again!
-        if (isLastIndexSuccessful && failedJSONDocs.size() > 0 && !isRetryingFailedIndexes) {
-            isRetryingFailedIndexes = true;
-            indexFailedDocuments();
+        // Something bad happened. I expect only the finest of 200's.  Retrying
+        // a request elastic didn't like won't help, so this batch is lost.
+        if (responseCode > LAST_RESPONSE_CODE) {
+            Log.v("Fail Reason", "Bulk request rejected with " + responseCode);
+            return false;
         }
+        return true;
     }
 
 }
@@ -0,0 +1,60 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+// Writes documents to a local file, one JSON document per line.  Handy when
+// there's no network at all, and the file can be fed to the bulk API later.
+class FileSink extends QueuedSink {
+
+    private static int MAX_QUEUED_DOCS = 1000;
+    private static int MAX_BATCH_DOCS = 200;
+    private static long FILE_LINGER_TIME = 2000;
+
+    private File logDirectory;
+    private BufferedWriter writer;
+
+    FileSink(File logDirectory) {
+        super("File", MAX_QUEUED_DOCS, MAX_BATCH_DOCS, FILE_LINGER_TIME);
+        this.logDirectory = logDirectory;
+    }
+
+    @Override
+    boolean deliver(List<JSONObject> batch) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new FileWriter(newLogFile(), true));
+        }
+
+        for (JSONObject document : batch) {
+            writer.write(document.toString());
+            writer.newLine();
+        }
+        writer.flush();
+        return true;
+    }
+
+    @Override
+    void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // Nothing left to do with it anyway
+            }
+            writer = null;
+        }
+    }
+
+    // One file per logging session
+    private File newLogFile() {
+        SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        String dateString = logDateFormat.format(new Date(System.currentTimeMillis()));
+        return new File(logDirectory, "sensor_dump-" + dateString + ".json");
+    }
+}
@@ -28,6 +28,9 @@ class GPSLogger implements LocationListener {
     double gpsTotalDistanceKM;
     double gpsTotalDistanceMiles;
 
+    // Set while alerts are turned on
+    volatile AlertEngine alertEngine;
+
     private float lastSpeed;
     private double lastLat;
     private double lastLong;
@@ -64,6 +67,12 @@ class GPSLogger implements LocationListener {
         gpsAccelerationMPH = gpsAcceleration * (float) 2.23694;
         lastSpeed = gpsSpeed;
 
+        // Hard braking shows up here
+        AlertEngine engine = alertEngine;
+        if (engine != null && gpsUpdates > 1) {
+            engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, System.currentTimeMillis(), gpsAcceleration);
+        }
+
         // Calculate distance
         Location currentLocation = new Location("current");
         currentLocation.setLatitude(gpsLat);
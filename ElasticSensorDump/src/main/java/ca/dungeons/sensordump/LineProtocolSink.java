@@ -0,0 +1,134 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+
+// Fires documents at a UDP listener in InfluxDB line protocol, for real-time
+// dashboards.  Only the numeric fields go out.  No timestamp is sent, so the
+// receiver stamps each line when it arrives, which is what a live view wants.
+// That also means a batch that doesn't go out can't be sent later: it would
+// show up stamped with the wrong time.  Failed batches are dropped instead.
+class LineProtocolSink extends QueuedSink {
+
+    private static int MAX_QUEUED_DOCS = 100;
+    private static int MAX_BATCH_DOCS = 20;
+    private static int MAX_DATAGRAM_SIZE = 1400;
+    private static String MEASUREMENT = "esd";
+    private static Charset UTF8 = Charset.forName("UTF-8");
+
+    private String udpHost;
+    private int udpPort;
+    private InetAddress udpAddress;
+    private DatagramSocket socket;
+
+    LineProtocolSink(String udpHost, int udpPort) {
+        // Stale readings are no use to a live view, so keep the queue short
+        // and send as soon as anything shows up.
+        super("Line Protocol", MAX_QUEUED_DOCS, MAX_BATCH_DOCS, 0);
+        this.udpHost = udpHost;
+        this.udpPort = udpPort;
+    }
+
+    @Override
+    boolean deliver(List<JSONObject> batch) {
+        try {
+            if (socket == null) {
+                udpAddress = InetAddress.getByName(udpHost);
+                socket = new DatagramSocket();
+            }
+
+            // Pack as many lines into each datagram as will fit
+            StringBuilder datagram = new StringBuilder();
+            for (JSONObject document : batch) {
+                String line = toLine(document);
+                if (line == null) {
+                    continue;
+                }
+                if (datagram.length() > 0 && datagram.length() + line.length() > MAX_DATAGRAM_SIZE) {
+                    send(datagram);
+                }
+                datagram.append(line);
+            }
+            if (datagram.length() > 0) {
+                send(datagram);
+            }
+            return true;
+        } catch (IOException e) {
+            // Off the network.  Drop the batch rather than replay it later.
+            Log.v("Line Protocol Sink", "Dropping batch: " + e.toString());
+            return false;
+        }
+    }
+
+    @Override
+    void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    private void send(StringBuilder datagram) throws IOException {
+        byte[] data = datagram.toString().getBytes(UTF8);
+        socket.send(new DatagramPacket(data, data.length, udpAddress, udpPort));
+        datagram.setLength(0);
+    }
+
+    // esd,tag=phone_data loudness=12.5,frequency=440.0,...
+    private static String toLine(JSONObject document) {
+        // Alerts aren't readings, keep them out of the measurement
+        if (document.has("alert")) {
+            return null;
+        }
+
+        StringBuilder line = new StringBuilder(MEASUREMENT);
+
+        String tag = document.optString("tag", "");
+        if (tag.length() > 0) {
+            line.append(",tag=");
+            escape(line, tag);
+        }
+
+        boolean hasFields = false;
+        Iterator<String> keys = document.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = document.opt(key);
+
+            // Everything goes out as a float so the field types never flip-flop
+            if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                if (Double.isNaN(number) || Double.isInfinite(number)) {
+                    continue;
+                }
+                line.append(hasFields ? ',' : ' ');
+                escape(line, key);
+                line.append('=').append(number);
+                hasFields = true;
+            }
+        }
+
+        if (!hasFields) {
+            return null;
+        }
+        return line.append('\n').toString();
+    }
+
+    // Commas, spaces and equals signs are special in keys and tag values
+    private static void escape(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ',' || c == ' ' || c == '=') {
+                line.append('\\');
+            }
+            line.append(c);
+        }
+    }
+}
@@ -25,20 +25,38 @@ import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 
-public class MainActivity extends Activity implements SensorEventListener {
+public class MainActivity extends Activity implements SensorEventListener,
+        SharedPreferences.OnSharedPreferenceChangeListener {
 
     private static int MIN_SENSOR_REFRESH = 50;
 
+    // Fields we keep locally for recent history.  Six hours at the default
+    // collection interval, less if the interval is turned down.
+    private static String[] HISTORY_FIELDS = {"speed", "altitude", "acceleration", "loudness",
+            "frequency", "accelerometer0", "accelerometer1", "accelerometer2", "light0", "pressure0"};
+    private static int HISTORY_ROWS = 6 * 60 * 60 * 4;
+
     private TextView tvProgress = null;
     private GPSLogger gpsLogger = new GPSLogger();
     private AudioLogger audioLogger = new AudioLogger();
     private ElasticSearchIndexer esIndexer;
+    private DocumentDispatcher dispatcher;
+    private AlertEngine alertEngine;
+    private TimeSeriesStore history;
+    private float[] historyRow = new float[HISTORY_FIELDS.length];
+
+    // Alerts are built off the main thread, so they get the tag from here
+    // rather than from joSensorData
+    private volatile String currentTag = "";
 
     // JSON structure for sensor and gps data
     private JSONObject joSensorData = new JSONObject();
@@ -52,6 +70,7 @@ public class MainActivity extends Activity implements SensorEventListener {
     private boolean logging = false;
 
     private long lastUpdate;
+    private int lastGpsUpdates;
     private long startTime;
 
     private int sensorRefreshTime = 250;
@@ -69,6 +88,17 @@ public class MainActivity extends Activity implements SensorEventListener {
         final Intent settingsIntent = new Intent(this, SettingsActivity.class);
         sharedPrefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
 
+        // Pick up settings changes while we're logging.  SharedPreferences only
+        // keeps a weak reference to the listener, which is fine since it's us.
+        sharedPrefs.registerOnSharedPreferenceChangeListener(this);
+
+        // Recent readings stay on the device, even with no network
+        try {
+            history = new TimeSeriesStore(new File(getFilesDir(), "history.tsdb"), HISTORY_FIELDS, HISTORY_ROWS);
+        } catch (IOException e) {
+            Log.v("History Error", "Can't open history: " + e.toString());
+        }
+
         // Click a button, get some sensor data
         final Button btnStart = (Button) findViewById(R.id.btnStart);
         btnStart.setOnClickListener(new View.OnClickListener() {
@@ -122,6 +152,25 @@ public class MainActivity extends Activity implements SensorEventListener {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        sharedPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        super.onDestroy();
+    }
+
+    // Settings changed, hand the indexer a fresh config.  No need to stop and
+    // lose whatever is queued up.
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (!logging) {
+            return;
+        }
+        esIndexer.updateConfig(ElasticConfig.fromPreferences(sharedPreferences));
+        if (key.equals("tag")) {
+            updateTag();
+        }
+    }
+
     @Override
     public final void onAccuracyChanged(Sensor sensor, int accuracy) {
         // I don't really care about this yet.
@@ -172,6 +221,18 @@ public class MainActivity extends Activity implements SensorEventListener {
             joSensorData.put("loudness", audioLogger.loudness);
             joSensorData.put("frequency", audioLogger.frequency);
 
+            // Check the raw reading for shocks before it gets sampled down
+            if (alertEngine != null) {
+                alertEngine.flushExpired(System.currentTimeMillis());
+            }
+            if (alertEngine != null && event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+                float x = event.values[0];
+                float y = event.values[1];
+                float z = event.values[2];
+                alertEngine.onSample(AlertEngine.SLOT_ACCEL_MAGNITUDE, System.currentTimeMillis(),
+                        (float) Math.sqrt(x * x + y * y + z * z));
+            }
+
             // Store sensor update into sensor data structure
             for (int i = 0; i < event.values.length; i++) {
 
@@ -197,13 +258,32 @@ public class MainActivity extends Activity implements SensorEventListener {
             if (System.currentTimeMillis() > lastUpdate + sensorRefreshTime) {
                 updateScreen();
                 lastUpdate = System.currentTimeMillis();
-                esIndexer.index(joSensorData);
+
+                // A fresh GPS fix jumps the queue so positions show up right away
+                int lane = DocumentSink.LANE_LIVE;
+                if (gpsLogger.gpsUpdates != lastGpsUpdates) {
+                    lastGpsUpdates = gpsLogger.gpsUpdates;
+                    lane = DocumentSink.LANE_URGENT;
+                }
+                dispatcher.publish(joSensorData, lane);
+                recordHistory(lastUpdate);
             }
         } catch (Exception e) {
             Log.v("JSON Logging error", e.toString());
         }
     }
 
+    // Copy the fields we keep history for out of the current document
+    private void recordHistory(long time) {
+        if (history == null) {
+            return;
+        }
+        for (int i = 0; i < HISTORY_FIELDS.length; i++) {
+            historyRow[i] = (float) joSensorData.optDouble(HISTORY_FIELDS[i], Double.NaN);
+        }
+        history.append(time, historyRow);
+    }
+
     // Go through the sensor array and light them all up
     private void startLogging() {
 
@@ -214,8 +294,8 @@ public class MainActivity extends Activity implements SensorEventListener {
         startTime = System.currentTimeMillis();
         lastUpdate = startTime;
         gpsLogger.resetGPS();
-        esIndexer = new ElasticSearchIndexer();
-        esIndexer.updateURL(sharedPrefs);
+        lastGpsUpdates = 0;
+        startSinks();
 
         // Bind all sensors to activity
         for (int usableSensor : usableSensors) {
@@ -238,6 +318,103 @@ public class MainActivity extends Activity implements SensorEventListener {
         }
     }
 
+    // Elastic always gets the documents, the other outputs are optional
+    private void startSinks() {
+        dispatcher = new DocumentDispatcher();
+
+        esIndexer = new ElasticSearchIndexer(ElasticConfig.fromPreferences(sharedPrefs));
+        dispatcher.addSink(esIndexer);
+
+        if (sharedPrefs.getBoolean("file_sink", false)) {
+            File logDirectory = getExternalFilesDir(null);
+            if (logDirectory == null) {
+                logDirectory = getFilesDir();
+            }
+            dispatcher.addSink(new FileSink(logDirectory));
+        }
+
+        if (sharedPrefs.getBoolean("udp_sink", false)) {
+            try {
+                int udpPort = Integer.parseInt(sharedPrefs.getString("udp_port", "8089"));
+                dispatcher.addSink(new LineProtocolSink(sharedPrefs.getString("udp_host", "localhost"), udpPort));
+            } catch (NumberFormatException e) {
+                Log.v("UDP Error", "Bad UDP port: " + e.toString());
+            }
+        }
+
+        // Only ship the fields that changed, plus the odd full keyframe
+        if (sharedPrefs.getBoolean("sparse_documents", false)) {
+            try {
+                int keyframeInterval = Integer.parseInt(sharedPrefs.getString("sparse_keyframe_interval", "20"));
+                double epsilon = Double.parseDouble(sharedPrefs.getString("sparse_epsilon", "0.01"));
+                dispatcher.setSparseEncoder(new SparseDocumentEncoder(keyframeInterval, epsilon));
+            } catch (NumberFormatException e) {
+                Log.v("Sparse Error", "Bad sparse settings: " + e.toString());
+            }
+        }
+
+        updateTag();
+
+        dispatcher.start();
+        startAlerts();
+    }
+
+    // Set up the alert rules from the preferences and hook up the loggers
+    private void startAlerts() {
+        alertEngine = null;
+        if (sharedPrefs.getBoolean("alerts", false)) {
+            try {
+                float shock = Float.parseFloat(sharedPrefs.getString("alert_shock", "30"));
+                float braking = Float.parseFloat(sharedPrefs.getString("alert_braking", "-4"));
+                float loudness = Float.parseFloat(sharedPrefs.getString("alert_loudness", "80"));
+                float zScore = Float.parseFloat(sharedPrefs.getString("alert_zscore", "6"));
+
+                final DocumentDispatcher alertDispatcher = dispatcher;
+                AlertEngine engine = new AlertEngine(new AlertEngine.AlertListener() {
+                    @Override
+                    public void onAlert(JSONObject alert) {
+                        try {
+                            if (!currentTag.equals("")) {
+                                alert.put("tag", currentTag);
+                            }
+                            if (gpsLogger.gpsHasData) {
+                                alert.put("location", "" + gpsLogger.gpsLat + "," + gpsLogger.gpsLong);
+                            }
+                        } catch (JSONException e) {
+                            Log.v("JSON Logging error", e.toString());
+                        }
+                        alertDispatcher.publishAlert(alert);
+                    }
+                });
+                engine.addThresholdRule(AlertEngine.SLOT_ACCEL_MAGNITUDE, "shock", AlertEngine.RULE_ABOVE, shock);
+                engine.addThresholdRule(AlertEngine.SLOT_GPS_ACCELERATION, "hard_braking", AlertEngine.RULE_BELOW, braking);
+                engine.addThresholdRule(AlertEngine.SLOT_LOUDNESS, "loud_noise", AlertEngine.RULE_ABOVE, loudness);
+                engine.addZScoreRule(AlertEngine.SLOT_ACCEL_MAGNITUDE, "motion_anomaly", zScore, 0.01f);
+                engine.addZScoreRule(AlertEngine.SLOT_LOUDNESS, "loudness_anomaly", zScore, 0.01f);
+                alertEngine = engine;
+            } catch (NumberFormatException e) {
+                Log.v("Alert Error", "Bad alert settings: " + e.toString());
+            }
+        }
+        gpsLogger.alertEngine = alertEngine;
+        audioLogger.alertEngine = alertEngine;
+    }
+
+    // Make sure the user tag is in every document if they've made one
+    private void updateTag() {
+        try {
+            String tag = sharedPrefs.getString("tag", "phone_data");
+            currentTag = tag;
+            if (!tag.equals("")) {
+                joSensorData.put("tag", tag);
+            } else {
+                joSensorData.remove("tag");
+            }
+        } catch (JSONException e) {
+            Log.v("JSON Logging error", e.toString());
+        }
+    }
+
     // Shut down the sensors by stopping listening to them
     private void stopLogging() {
 
@@ -249,6 +426,16 @@ public class MainActivity extends Activity implements SensorEventListener {
         tvProgress.setText( getString(R.string.loggingStopped) );
         mSensorManager.unregisterListener(this);
         audioLogger.stopRecording();
+        gpsLogger.alertEngine = null;
+        audioLogger.alertEngine = null;
+        if (alertEngine != null) {
+            alertEngine.flushAll();
+            alertEngine = null;
+        }
+        dispatcher.stop();
+        if (history != null) {
+            history.sync();
+        }
 
         // Disable GPS if we allowed it.
         if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
@@ -263,10 +450,10 @@ public class MainActivity extends Activity implements SensorEventListener {
     // Update the display with readings/written/errors
     private void updateScreen() {
 
-        String updateText = getString(R.string.Sensor_Readings) + esIndexer.indexRequests + "\n" +
-            getString(R.string.Documents_Written) + esIndexer.indexSuccess + "\n" +
+        String updateText = getString(R.string.Sensor_Readings) + dispatcher.documentsPublished + "\n" +
+            getString(R.string.Documents_Written) + esIndexer.documentsSent.get() + "\n" +
             getString(R.string.GPS_Updates) + gpsLogger.gpsUpdates + "\n" +
-            getString(R.string.Errors) + esIndexer.failedIndex;
+            getString(R.string.Errors) + esIndexer.failedRequests.get();
 
         tvProgress = (TextView) findViewById(R.id.tvProgress);
         tvProgress.setText(updateText);
@@ -0,0 +1,278 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Base for sinks that ship documents from their own worker thread.  Each sink
+// gets its own bounded queues, so when one output falls behind it only fills up
+// (and drops) its own queues, and the others keep going.
+//
+// Documents come in on the urgent and live lanes.  Anything that fails to go
+// out lands in the backlog, which only the worker touches.  Each batch is split
+// between the lanes by LANE_WEIGHTS, and the backlog is only replayed once the
+// connection is working again, so fresh data gets through first after an
+// outage while history trickles out behind it.
+abstract class QueuedSink implements DocumentSink {
+
+    private static long MIN_RETRY_DELAY = 500;
+    private static long MAX_RETRY_DELAY = 5000;
+
+    // Share of each batch per lane, indexed by DocumentSink.LANE_* and then
+    // the backlog.  Urgent and live docs can spill into unused space, the
+    // backlog can't.
+    private static int BACKLOG = 2;
+    private static int[] LANE_WEIGHTS = {6, 3, 1};
+    private static int TOTAL_WEIGHT = 10;
+
+    // When there's nothing live to send, replay a backlog batch at most this often
+    private static long BACKLOG_REPLAY_INTERVAL = 1000;
+
+    // Bumped from the sensor thread, the audio thread (alerts) and the worker,
+    // so these have to be atomic
+    final AtomicLong documentsQueued = new AtomicLong();
+    final AtomicLong documentsSent = new AtomicLong();
+    final AtomicLong documentsDropped = new AtomicLong();
+    final AtomicLong failedRequests = new AtomicLong();
+
+    private final String sinkName;
+    private final BlockingQueue<JSONObject> urgentQueue;
+    private final BlockingQueue<JSONObject> liveQueue;
+    private final ArrayDeque<JSONObject> backlog;
+    private final int backlogSize;
+    private volatile int batchSize;
+    private final long lingerTime;
+
+    // Poked on every offer so the worker doesn't have to poll the lanes
+    private final Semaphore wakeup = new Semaphore(0);
+
+    private volatile boolean isRunning = false;
+    private Thread worker;
+
+    // Worker thread only
+    private boolean isLastDeliveryGood = true;
+    private long nextReplayTime = 0;
+
+    // Where the replayed backlog documents sit in the current batch
+    private int replayStart = 0;
+    private int replayCount = 0;
+
+    // lingerTime is how long we'll wait for a batch to fill up before sending
+    // whatever we have.  Zero means send as soon as something shows up.
+    // Urgent documents never wait.
+    QueuedSink(String sinkName, int queueSize, int batchSize, long lingerTime) {
+        this.sinkName = sinkName;
+        this.urgentQueue = new ArrayBlockingQueue<>(queueSize);
+        this.liveQueue = new ArrayBlockingQueue<>(queueSize);
+        this.backlog = new ArrayDeque<>();
+        this.backlogSize = queueSize;
+        this.batchSize = batchSize;
+        this.lingerTime = lingerTime;
+    }
+
+    // Ship a batch of documents.  Return false if the other end refused the
+    // batch and it isn't worth sending again.  Throwing means the batch wasn't
+    // delivered and it goes to the backlog to be tried again later.
+    abstract boolean deliver(List<JSONObject> batch) throws IOException;
+
+    // Takes effect from the next batch
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    // Release sockets, files, etc.  Called from the worker thread once it's done.
+    void close() {
+    }
+
+    @Override
+    public boolean offer(JSONObject document, int lane) {
+        if (lane != LANE_URGENT && lane != LANE_LIVE) {
+            throw new IllegalArgumentException("No such lane: " + lane);
+        }
+        BlockingQueue<JSONObject> queue = lane == LANE_URGENT ? urgentQueue : liveQueue;
+        if (!isRunning || !queue.offer(document)) {
+            documentsDropped.incrementAndGet();
+            return false;
+        }
+        documentsQueued.incrementAndGet();
+        wakeup.release();
+        return true;
+    }
+
+    @Override
+    public void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueues();
+            }
+        }, sinkName + " Sink");
+        worker.start();
+    }
+
+    // Stop accepting documents.  The worker makes one last pass at whatever is
+    // still queued and then shuts down.
+    @Override
+    public void stop() {
+        isRunning = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void drainQueues() {
+        List<JSONObject> batch = new ArrayList<>();
+        long retryDelay = MIN_RETRY_DELAY;
+
+        while (true) {
+            try {
+                if (!isRunning) {
+                    finalFlush(batch);
+                    break;
+                }
+
+                waitForDocuments();
+                fillBatch(batch);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                if (sendBatch(batch)) {
+                    retryDelay = MIN_RETRY_DELAY;
+                } else {
+                    // Park the batch in the backlog and back off.  The next
+                    // attempt leads with whatever fresh data has come in.
+                    addToBacklog(batch);
+                    Thread.sleep(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                // stop() woke us up, loop around for the final flush
+            }
+        }
+
+        close();
+        Log.i(sinkName + " Sink", "Sink stopped.");
+    }
+
+    // Block until there's something to send, then give the batch a little
+    // while to fill up unless something urgent is waiting.
+    private void waitForDocuments() throws InterruptedException {
+        while (urgentQueue.isEmpty() && liveQueue.isEmpty()) {
+            long now = System.currentTimeMillis();
+            if (!backlog.isEmpty() && now >= nextReplayTime) {
+                return;
+            }
+            long wait = backlog.isEmpty() ? 1000 : nextReplayTime - now;
+            wakeup.tryAcquire(wait, TimeUnit.MILLISECONDS);
+        }
+
+        long deadline = System.currentTimeMillis() + lingerTime;
+        while (urgentQueue.isEmpty() && liveQueue.size() < batchSize) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            wakeup.tryAcquire(wait, TimeUnit.MILLISECONDS);
+        }
+        wakeup.drainPermits();
+    }
+
+    private void fillBatch(List<JSONObject> batch) {
+        int size = batchSize;
+        boolean hasLiveDocs = !urgentQueue.isEmpty() || !liveQueue.isEmpty();
+
+        // Each lane gets its share first, without going over the batch size
+        urgentQueue.drainTo(batch, Math.min(share(LANE_URGENT, size), size));
+        liveQueue.drainTo(batch, Math.min(share(LANE_LIVE, size), size - batch.size()));
+
+        // Only replay history when the last delivery went through, or when
+        // there's nothing fresh to test the connection with
+        replayStart = batch.size();
+        replayCount = 0;
+        int replay = Math.min(share(BACKLOG, size), size - batch.size());
+        long now = System.currentTimeMillis();
+        if (replay > 0 && !backlog.isEmpty() && (isLastDeliveryGood || !hasLiveDocs) && now >= nextReplayTime) {
+            while (replayCount < replay && !backlog.isEmpty()) {
+                batch.add(backlog.pollFirst());
+                replayCount++;
+            }
+            nextReplayTime = now + BACKLOG_REPLAY_INTERVAL;
+        }
+
+        // Then the live lanes can have whatever room is left
+        urgentQueue.drainTo(batch, size - batch.size());
+        liveQueue.drainTo(batch, size - batch.size());
+    }
+
+    private static int share(int lane, int size) {
+        return Math.max(1, size * LANE_WEIGHTS[lane] / TOTAL_WEIGHT);
+    }
+
+    // Replayed documents go back at the head in their original order, since
+    // they're older than anything still waiting.  Fresh ones join the tail.
+    // The backlog is bounded too.  When it's full the oldest documents go.
+    private void addToBacklog(List<JSONObject> batch) {
+        for (int i = replayStart + replayCount - 1; i >= replayStart; i--) {
+            backlog.addFirst(batch.get(i));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (i < replayStart || i >= replayStart + replayCount) {
+                backlog.addLast(batch.get(i));
+            }
+        }
+        while (backlog.size() > backlogSize) {
+            backlog.pollFirst();
+            documentsDropped.incrementAndGet();
+        }
+    }
+
+    // Shutting down.  Send everything that's left, oldest first, and give up
+    // on the lot as soon as a batch doesn't make it.
+    private void finalFlush(List<JSONObject> batch) {
+        urgentQueue.drainTo(backlog);
+        liveQueue.drainTo(backlog);
+
+        while (!backlog.isEmpty()) {
+            batch.clear();
+            while (batch.size() < batchSize && !backlog.isEmpty()) {
+                batch.add(backlog.pollFirst());
+            }
+            if (!sendBatch(batch)) {
+                documentsDropped.addAndGet(batch.size() + backlog.size());
+                backlog.clear();
+            }
+        }
+    }
+
+    private boolean sendBatch(List<JSONObject> batch) {
+        try {
+            if (deliver(batch)) {
+                documentsSent.addAndGet(batch.size());
+            } else {
+                failedRequests.incrementAndGet();
+                documentsDropped.addAndGet(batch.size());
+            }
+            isLastDeliveryGood = true;
+            return true;
+        } catch (IOException e) {
+            failedRequests.incrementAndGet();
+            isLastDeliveryGood = false;
+            Log.v(sinkName + " Sink", "Delivery failed: " + e.toString());
+            return false;
+        }
+    }
+}
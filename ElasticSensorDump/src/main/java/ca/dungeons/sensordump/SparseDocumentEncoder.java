@@ -0,0 +1,78 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Turns the full sensor document into a sparse one that only carries the
+// fields that moved since we last sent them.  Every so often a keyframe with
+// all the fields goes out, so a reader can rebuild full rows from there.
+// See SparseDocumentExpander for the other half.
+class SparseDocumentEncoder {
+
+    // How far a number has to move before we bother sending it again.
+    // Anything not listed here uses the default from the preferences.
+    // Keep the preference summary and README in step with this list.
+    private static Map<String, Double> FIELD_EPSILONS = new HashMap<>();
+    static {
+        FIELD_EPSILONS.put("loudness", 1.0);
+        FIELD_EPSILONS.put("frequency", 10.0);
+        FIELD_EPSILONS.put("altitude", 1.0);
+        FIELD_EPSILONS.put("accuracy", 1.0);
+        FIELD_EPSILONS.put("bearing", 1.0);
+    }
+
+    // One document in every keyframeInterval is a full one
+    private int keyframeInterval;
+    private double defaultEpsilon;
+    private int docsSinceKeyframe = 0;
+
+    // What the reader last saw for each field
+    private Map<String, Object> lastSent = new HashMap<>();
+
+    SparseDocumentEncoder(int keyframeInterval, double defaultEpsilon) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        this.defaultEpsilon = defaultEpsilon;
+    }
+
+    JSONObject encode(JSONObject document) throws JSONException {
+        boolean isKeyframe = lastSent.isEmpty() || docsSinceKeyframe >= keyframeInterval;
+        JSONObject sparse = new JSONObject();
+
+        Iterator<String> keys = document.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = document.opt(key);
+
+            // The timestamp makes it a row and the tag is what readers group
+            // streams by, so those two always go out.
+            if (isKeyframe || key.equals("@timestamp") || key.equals("tag") || hasChanged(key, value)) {
+                sparse.put(key, value);
+                lastSent.put(key, value);
+            }
+        }
+        sparse.put("keyframe", isKeyframe);
+
+        docsSinceKeyframe = isKeyframe ? 1 : docsSinceKeyframe + 1;
+        return sparse;
+    }
+
+    private boolean hasChanged(String key, Object value) {
+        Object last = lastSent.get(key);
+        if (last == null) {
+            return true;
+        }
+        if (last instanceof Number && value instanceof Number) {
+            double delta = ((Number) value).doubleValue() - ((Number) last).doubleValue();
+            return Math.abs(delta) > epsilonFor(key);
+        }
+        return !last.equals(value);
+    }
+
+    private double epsilonFor(String key) {
+        Double epsilon = FIELD_EPSILONS.get(key);
+        return epsilon != null ? epsilon : defaultEpsilon;
+    }
+}
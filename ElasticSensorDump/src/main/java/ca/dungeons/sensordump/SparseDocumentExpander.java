@@ -0,0 +1,46 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Rebuilds full rows from a stream of sparse documents (see SparseDocumentEncoder).
+// Feed it the documents from one tag in timestamp order, e.g. from a scroll over
+// the index sorted by @timestamp, or from the lines of a FileSink log.
+class SparseDocumentExpander {
+
+    private Map<String, Object> current = new HashMap<>();
+    private boolean hasKeyframe = false;
+
+    // Returns the full document, or null if we haven't seen a keyframe yet
+    // and so can't know what the missing fields were.  Alert documents share
+    // the index and tag but aren't part of the row stream, so they come back
+    // as they are and leave the rebuilt row alone.
+    JSONObject expand(JSONObject sparse) throws JSONException {
+        if (sparse.has("alert")) {
+            return sparse;
+        }
+
+        boolean isKeyframe = sparse.optBoolean("keyframe", true);
+        if (isKeyframe) {
+            current.clear();
+            hasKeyframe = true;
+        } else if (!hasKeyframe) {
+            return null;
+        }
+
+        Iterator<String> keys = sparse.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            current.put(key, sparse.get(key));
+        }
+
+        JSONObject full = new JSONObject();
+        for (Map.Entry<String, Object> field : current.entrySet()) {
+            full.put(field.getKey(), field.getValue());
+        }
+        return full;
+    }
+}
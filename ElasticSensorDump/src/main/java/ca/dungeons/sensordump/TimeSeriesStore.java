@@ -0,0 +1,206 @@
+package ca.dungeons.sensordump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Keeps the last few hours of readings on the device in a fixed-size circular
+// file, so we can look at recent history without the network and without
+// holding it all on the heap.  The file is memory mapped and laid out in
+// columns: one run of timestamps, then one run of floats per field.  Every
+// BLOCK_SIZE rows we note the first timestamp in a small index, which gets
+// queries to the right spot without scanning the whole file.
+//
+// File layout:
+//   header      magic, version, capacity, column count, rows written
+//   block index long per BLOCK_SIZE rows, the first timestamp in that block
+//   timestamps  long per row
+//   columns     float per row, one run per field
+class TimeSeriesStore {
+
+    private static int MAGIC = 0x45534454;
+    private static int VERSION = 1;
+    private static int HEADER_SIZE = 64;
+    private static int ROWS_WRITTEN_OFFSET = 16;
+    private static int BLOCK_SIZE = 256;
+
+    private final String[] fields;
+    private final int capacity;
+    private final int blockCount;
+    private final int indexOffset;
+    private final int timeOffset;
+    private final int columnOffset;
+    private final MappedByteBuffer buffer;
+
+    private long rowsWritten;
+    private long lastTime = Long.MIN_VALUE;
+
+    // Capacity gets rounded up to a whole number of blocks.  If the file is
+    // already there with the same shape we pick up where it left off,
+    // otherwise it starts out empty.
+    TimeSeriesStore(File file, String[] fields, int capacity) throws IOException {
+        this.fields = fields;
+        this.capacity = ((capacity + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        this.blockCount = this.capacity / BLOCK_SIZE;
+        this.indexOffset = HEADER_SIZE;
+        this.timeOffset = indexOffset + blockCount * 8;
+        this.columnOffset = timeOffset + this.capacity * 8;
+        long fileSize = (long) columnOffset + (long) fields.length * this.capacity * 4;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == this.capacity && buffer.getInt(12) == fields.length) {
+            rowsWritten = buffer.getLong(ROWS_WRITTEN_OFFSET);
+            if (rowsWritten > 0) {
+                lastTime = timeAt(rowsWritten - 1);
+            }
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, this.capacity);
+            buffer.putInt(12, fields.length);
+            buffer.putLong(ROWS_WRITTEN_OFFSET, 0);
+            rowsWritten = 0;
+        }
+    }
+
+    int columnIndex(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // One value per field, in the order they were given to the constructor.
+    // Use NaN for a field that has no reading yet.  Rows have to go in in time
+    // order, so a clock that steps backwards is held at the last time.
+    synchronized void append(long time, float[] row) {
+        if (time < lastTime) {
+            time = lastTime;
+        }
+        lastTime = time;
+
+        int slot = (int) (rowsWritten % capacity);
+        buffer.putLong(timeOffset + slot * 8, time);
+        for (int column = 0; column < fields.length; column++) {
+            buffer.putFloat(columnOffset + (column * capacity + slot) * 4, row[column]);
+        }
+        if (slot % BLOCK_SIZE == 0) {
+            buffer.putLong(indexOffset + (slot / BLOCK_SIZE) * 8, time);
+        }
+
+        rowsWritten++;
+        buffer.putLong(ROWS_WRITTEN_OFFSET, rowsWritten);
+    }
+
+    // The last windowMs of a field, averaged down to at most maxPoints points
+    int queryRecent(String field, long windowMs, int maxPoints, long[] outTimes, float[] outValues) {
+        int column = columnIndex(field);
+        if (column < 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        return query(column, now - windowMs, now, maxPoints, outTimes, outValues);
+    }
+
+    // Splits [from, to] into maxPoints equal buckets and averages the readings
+    // in each one.  Empty buckets are skipped, so the return value is how many
+    // points actually got filled in.  outTimes gets the start of each bucket.
+    synchronized int query(int column, long from, long to, int maxPoints, long[] outTimes, float[] outValues) {
+        maxPoints = Math.min(maxPoints, Math.min(outTimes.length, outValues.length));
+        if (rowsWritten == 0 || maxPoints <= 0 || to < from) {
+            return 0;
+        }
+
+        double bucketWidth = (double) (to - from + 1) / maxPoints;
+        int points = 0;
+        int bucket = -1;
+        double sum = 0;
+        int count = 0;
+
+        for (long row = firstRowAtOrAfter(from); row < rowsWritten; row++) {
+            long time = timeAt(row);
+            if (time > to) {
+                break;
+            }
+            float value = buffer.getFloat(columnOffset + (column * capacity + (int) (row % capacity)) * 4);
+            if (Float.isNaN(value)) {
+                continue;
+            }
+
+            int rowBucket = Math.min(maxPoints - 1, (int) ((time - from) / bucketWidth));
+            if (rowBucket != bucket) {
+                if (count > 0) {
+                    outTimes[points] = from + (long) (bucket * bucketWidth);
+                    outValues[points] = (float) (sum / count);
+                    points++;
+                }
+                bucket = rowBucket;
+                sum = 0;
+                count = 0;
+            }
+            sum += value;
+            count++;
+        }
+
+        if (count > 0) {
+            outTimes[points] = from + (long) (bucket * bucketWidth);
+            outValues[points] = (float) (sum / count);
+            points++;
+        }
+        return points;
+    }
+
+    // Flush dirty pages out to the file
+    synchronized void sync() {
+        buffer.force();
+    }
+
+    private long timeAt(long row) {
+        return buffer.getLong(timeOffset + (int) (row % capacity) * 8);
+    }
+
+    // Rows are numbered from the first one ever written.  Only the last
+    // capacity of them are still in the file.
+    private long firstRowAtOrAfter(long time) {
+        long oldest = Math.max(0, rowsWritten - capacity);
+
+        // The block holding the oldest row has had its start overwritten (and
+        // its index entry along with it), so search from the next full block
+        long firstBlock = (oldest + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long lastBlock = (rowsWritten - 1) / BLOCK_SIZE;
+
+        // Find the last block that starts before the time we want
+        long start = oldest;
+        long low = firstBlock;
+        long high = lastBlock;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long blockTime = buffer.getLong(indexOffset + (int) (mid % blockCount) * 8);
+            if (blockTime < time) {
+                start = mid * BLOCK_SIZE;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // Then walk the rest of the way
+        while (start < rowsWritten && timeAt(start) < time) {
+            start++;
+        }
+        return start;
+    }
+}
@@ -0,0 +1,60 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AlertEngineTest {
+
+    private List<JSONObject> alerts = new ArrayList<>();
+    private AlertEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new AlertEngine(new AlertEngine.AlertListener() {
+            @Override
+            public void onAlert(JSONObject alert) {
+                alerts.add(alert);
+            }
+        });
+        engine.addThresholdRule(AlertEngine.SLOT_GPS_ACCELERATION, "hard_braking", AlertEngine.RULE_BELOW, -4);
+    }
+
+    @Test
+    public void alertWaitsForPostTriggerSamples() throws Exception {
+        engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, 1000, 0);
+        engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, 2000, -6);
+        assertEquals(0, alerts.size());
+
+        engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, 3000, -1);
+        assertEquals(1, alerts.size());
+        assertEquals("hard_braking", alerts.get(0).getString("alert"));
+        assertEquals(-6, alerts.get(0).getDouble("alert_value"), 0.001);
+    }
+
+    @Test
+    public void flushExpiredSendsAlertsWhoseSensorWentQuiet() {
+        engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, 1000, -6);
+
+        engine.flushExpired(1500);
+        assertEquals(0, alerts.size());
+
+        engine.flushExpired(2000);
+        assertEquals(1, alerts.size());
+
+        // Sent once only
+        engine.flushExpired(5000);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void flushAllSendsPendingAlertsRightAway() {
+        engine.onSample(AlertEngine.SLOT_GPS_ACCELERATION, 1000, -6);
+        engine.flushAll();
+        assertEquals(1, alerts.size());
+    }
+}
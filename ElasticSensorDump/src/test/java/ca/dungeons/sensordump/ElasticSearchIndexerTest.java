@@ -0,0 +1,169 @@
+package ca.dungeons.sensordump;
+
+import android.content.SharedPreferences;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchIndexerTest {
+
+    private List<StubNode> stubs = new ArrayList<>();
+    private ElasticSearchIndexer indexer;
+
+    // Just enough of elastic to take bulk requests.  Remembers the _id of
+    // every document it was sent.
+    static class StubNode implements HttpHandler {
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final int port;
+        private HttpServer server;
+
+        StubNode(int port) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/", this);
+            server.start();
+            this.port = server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+            if (exchange.getRequestURI().getPath().equals("/_bulk")) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("{\"index\"")) {
+                        ids.add(new JSONObject(line).getJSONObject("index").getString("_id"));
+                    }
+                }
+            }
+            reader.close();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }
+    }
+
+    private static SharedPreferences preferences(final String hosts) {
+        return (SharedPreferences) Proxy.newProxyInstance(SharedPreferences.class.getClassLoader(),
+                new Class<?>[]{SharedPreferences.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args != null && args[0].equals("host")) {
+                            return hosts;
+                        }
+                        if (args != null && args[0].equals("bulk_size")) {
+                            return "5";
+                        }
+                        // Everything else gets its default
+                        return args != null && args.length > 1 ? args[1] : null;
+                    }
+                });
+    }
+
+    @After
+    public void shutDown() {
+        if (indexer != null) {
+            indexer.stop();
+        }
+        for (StubNode stub : stubs) {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void failsOverWhenANodeDiesMidStream() throws Exception {
+        StringBuilder hosts = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            StubNode stub = new StubNode(0);
+            stubs.add(stub);
+            hosts.append(i > 0 ? "," : "").append("127.0.0.1:").append(stub.port);
+        }
+
+        indexer = new ElasticSearchIndexer(ElasticConfig.fromPreferences(preferences(hosts.toString())));
+        indexer.start();
+
+        int documents = 60;
+        StubNode dying = stubs.get(0);
+        for (int i = 0; i < documents; i++) {
+            if (i == documents / 2) {
+                waitForSent(i);
+                dying.stop();
+            }
+            indexer.offer(new JSONObject().put("@timestamp", "t" + i).put("value", i), DocumentSink.LANE_LIVE);
+            Thread.sleep(10);
+        }
+        waitForSent(documents);
+
+        // Every document made it somewhere, and only once
+        Set<String> received = new HashSet<>();
+        for (StubNode stub : stubs) {
+            received.addAll(stub.ids);
+        }
+        assertEquals(documents, received.size());
+        assertEquals(0, indexer.documentsDropped.get());
+
+        // The dead node is benched and the others are fine
+        ElasticNodePool pool = indexer.nodePool();
+        assertFalse(pool.node(0).isHealthy);
+        assertTrue(pool.node(1).isHealthy);
+        assertTrue(pool.node(2).isHealthy);
+
+        // Bring it back on the same port and the probe lets it back in
+        stubs.set(0, new StubNode(dying.port));
+        pool.probe(null);
+        assertTrue(pool.node(0).isHealthy);
+    }
+
+    @Test
+    public void newClusterGetsTheMappingToo() throws Exception {
+        StubNode first = new StubNode(0);
+        StubNode second = new StubNode(0);
+        stubs.add(first);
+        stubs.add(second);
+
+        indexer = new ElasticSearchIndexer(ElasticConfig.fromPreferences(preferences("127.0.0.1:" + first.port)));
+        indexer.start();
+        indexer.offer(new JSONObject().put("@timestamp", "t0"), DocumentSink.LANE_LIVE);
+        waitForSent(1);
+
+        // Same index name, different cluster
+        indexer.updateConfig(ElasticConfig.fromPreferences(preferences("127.0.0.1:" + second.port)));
+        indexer.offer(new JSONObject().put("@timestamp", "t1"), DocumentSink.LANE_LIVE);
+        waitForSent(2);
+
+        assertEquals("PUT /sensor_dump/", first.requests.get(0));
+        assertEquals("PUT /sensor_dump/", second.requests.get(0));
+        assertEquals("POST /_bulk", second.requests.get(1));
+    }
+
+    private void waitForSent(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (indexer.documentsSent.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, indexer.documentsSent.get());
+    }
+}
@@ -0,0 +1,20 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+
+public class LineProtocolSinkTest {
+
+    // Readings have no timestamp on the wire, so a batch that can't be sent
+    // now has to be dropped rather than retried from the backlog
+    @Test
+    public void unreachableHostDropsTheBatch() throws Exception {
+        LineProtocolSink sink = new LineProtocolSink("no-such-host.invalid", 8089);
+        JSONObject document = new JSONObject().put("loudness", 12.5);
+        assertFalse(sink.deliver(Collections.singletonList(document)));
+        sink.close();
+    }
+}
@@ -0,0 +1,272 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedSinkTest {
+
+    private List<QueuedSink> sinks = new ArrayList<>();
+
+    // Keeps every batch in memory.  If a gate is set, deliver() waits on it.
+    static class RecordingSink extends QueuedSink {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch gate;
+
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingSink(String name, int queueSize) {
+            this(name, queueSize, 10);
+        }
+
+        RecordingSink(String name, int queueSize, int batchSize) {
+            super(name, queueSize, batchSize, 0);
+        }
+
+        @Override
+        boolean deliver(List<JSONObject> batch) {
+            entered.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            batchSizes.add(batch.size());
+            for (JSONObject document : batch) {
+                delivered.add(document.optString("name", ""));
+            }
+            return true;
+        }
+    }
+
+    // Fails every delivery while it's down, and remembers each batch that made
+    // it through along with when it went out
+    static class FlakySink extends QueuedSink {
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        final List<Long> batchTimes = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        volatile boolean isDown = true;
+
+        FlakySink() {
+            super("flaky", 100, 10, 0);
+        }
+
+        @Override
+        boolean deliver(List<JSONObject> batch) throws IOException {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isDown) {
+                throw new IOException("down");
+            }
+            List<String> names = new ArrayList<>();
+            for (JSONObject document : batch) {
+                names.add(document.optString("name", ""));
+            }
+            batches.add(names);
+            batchTimes.add(System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    @After
+    public void stopSinks() {
+        for (QueuedSink sink : sinks) {
+            sink.stop();
+        }
+    }
+
+    private RecordingSink newSink(String name, int queueSize) {
+        return newSink(name, queueSize, 10);
+    }
+
+    private RecordingSink newSink(String name, int queueSize, int batchSize) {
+        RecordingSink sink = new RecordingSink(name, queueSize, batchSize);
+        sinks.add(sink);
+        return sink;
+    }
+
+    private static JSONObject document(String name) throws Exception {
+        return new JSONObject().put("name", name);
+    }
+
+    private static boolean waitForCount(RecordingSink sink, int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (sink.delivered.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return sink.delivered.size() >= count;
+    }
+
+    @Test
+    public void publishFansOutToEverySink() throws Exception {
+        RecordingSink first = newSink("first", 100);
+        RecordingSink second = newSink("second", 100);
+        DocumentDispatcher dispatcher = new DocumentDispatcher();
+        dispatcher.addSink(first);
+        dispatcher.addSink(second);
+        dispatcher.start();
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.publish(document("doc" + i), DocumentSink.LANE_LIVE);
+        }
+
+        assertTrue(waitForCount(first, 5, 2000));
+        assertTrue(waitForCount(second, 5, 2000));
+        assertEquals(5, dispatcher.documentsPublished);
+        assertTrue(first.delivered.containsAll(second.delivered));
+    }
+
+    @Test
+    public void blockedSinkDoesNotHoldUpTheOthers() throws Exception {
+        RecordingSink stuck = newSink("stuck", 100);
+        stuck.gate = new CountDownLatch(1);
+        RecordingSink fast = newSink("fast", 100);
+        DocumentDispatcher dispatcher = new DocumentDispatcher();
+        dispatcher.addSink(stuck);
+        dispatcher.addSink(fast);
+        dispatcher.start();
+
+        for (int i = 0; i < 20; i++) {
+            dispatcher.publish(document("doc" + i), DocumentSink.LANE_LIVE);
+        }
+
+        assertTrue(waitForCount(fast, 20, 2000));
+        assertTrue(stuck.entered.await(2, TimeUnit.SECONDS));
+        assertEquals(0, stuck.delivered.size());
+
+        stuck.gate.countDown();
+        assertTrue(waitForCount(stuck, 20, 2000));
+    }
+
+    @Test
+    public void fullQueueDropsAndCounts() throws Exception {
+        RecordingSink sink = newSink("full", 4);
+        sink.gate = new CountDownLatch(1);
+        sink.start();
+
+        // The first document goes to the worker, which then sits in deliver()
+        assertTrue(sink.offer(document("first"), DocumentSink.LANE_LIVE));
+        assertTrue(sink.entered.await(2, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(sink.offer(document("queued" + i), DocumentSink.LANE_LIVE));
+        }
+        assertFalse(sink.offer(document("dropped"), DocumentSink.LANE_LIVE));
+        assertEquals(1, sink.documentsDropped.get());
+        assertEquals(5, sink.documentsQueued.get());
+
+        sink.gate.countDown();
+        assertTrue(waitForCount(sink, 5, 2000));
+        assertFalse(sink.delivered.contains("dropped"));
+    }
+
+    @Test
+    public void batchesNeverGoOverTheBatchSize() throws Exception {
+        RecordingSink sink = newSink("small", 100, 1);
+        sink.gate = new CountDownLatch(1);
+        sink.start();
+
+        // Pile up both lanes while the worker is stuck, so every lane has
+        // something to claim its share with
+        assertTrue(sink.offer(document("first"), DocumentSink.LANE_LIVE));
+        assertTrue(sink.entered.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            sink.offer(document("urgent" + i), DocumentSink.LANE_URGENT);
+            sink.offer(document("live" + i), DocumentSink.LANE_LIVE);
+        }
+
+        sink.gate.countDown();
+        assertTrue(waitForCount(sink, 21, 2000));
+        for (int size : sink.batchSizes) {
+            assertEquals(1, size);
+        }
+    }
+
+    @Test
+    public void freshDocumentsGoAheadOfTheBacklogAfterAnOutage() throws Exception {
+        FlakySink sink = new FlakySink();
+        sinks.add(sink);
+        sink.start();
+
+        // old0 goes to the worker on its own and fails, then old1-3 fail
+        // together.  All four end up in the backlog.
+        sink.offer(document("old0"), DocumentSink.LANE_LIVE);
+        assertTrue(sink.entered.await(2, TimeUnit.SECONDS));
+        for (int i = 1; i < 4; i++) {
+            sink.offer(document("old" + i), DocumentSink.LANE_LIVE);
+        }
+        sink.gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.failedRequests.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, sink.failedRequests.get());
+
+        // Back up again while the worker is backing off, with fresh data waiting
+        sink.isDown = false;
+        for (int i = 0; i < 3; i++) {
+            sink.offer(document("urgent" + i), DocumentSink.LANE_URGENT);
+        }
+        sink.offer(document("live0"), DocumentSink.LANE_LIVE);
+
+        deadline = System.currentTimeMillis() + 10000;
+        List<String> replayed = new ArrayList<>();
+        while (replayed.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            replayed.clear();
+            synchronized (sink.batches) {
+                for (int i = 1; i < sink.batches.size(); i++) {
+                    replayed.addAll(sink.batches.get(i));
+                }
+            }
+        }
+
+        // The first batch after the outage is all fresh data.  The delivery
+        // before it failed, so no history rides along yet.
+        List<String> first = sink.batches.get(0);
+        assertEquals(4, first.size());
+        assertEquals("urgent0", first.get(0));
+        assertEquals("urgent1", first.get(1));
+        assertEquals("urgent2", first.get(2));
+        assertEquals("live0", first.get(3));
+
+        // Then history, in the order it was first sent, no more than the
+        // backlog's share per batch and no more than one batch a second
+        assertEquals(4, replayed.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("old" + i, replayed.get(i));
+        }
+        for (int i = 1; i < sink.batches.size(); i++) {
+            assertEquals(1, sink.batches.get(i).size());
+            if (i > 1) {
+                long gap = sink.batchTimes.get(i) - sink.batchTimes.get(i - 1);
+                assertTrue("replays " + gap + "ms apart", gap >= 900);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyUrgentAndLiveLanesTakeDocuments() throws Exception {
+        RecordingSink sink = newSink("lanes", 10);
+        sink.start();
+        sink.offer(document("nowhere"), 2);
+    }
+}
@@ -0,0 +1,132 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SparseDocumentTest {
+
+    private static double EPSILON = 0.01;
+
+    // Looks like what MainActivity sends from a phone sitting on a desk: GPS
+    // hasn't moved, the session fields never change, and the slow sensors
+    // only drift now and then.
+    private static List<JSONObject> slowChangingDocuments(int count) throws Exception {
+        Random random = new Random(42);
+        List<JSONObject> documents = new ArrayList<>();
+        double light = 120;
+        double pressure = 1013.25;
+
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                light += 5;
+            }
+            if (i % 25 == 0) {
+                pressure += 0.1;
+            }
+
+            JSONObject document = new JSONObject();
+            document.put("@timestamp", String.format("2017-05-01T12:00:%02d.%03d-0400", i / 4 % 60, i % 4 * 250));
+            document.put("start_time", "2017-05-01T12:00:00.000-0400");
+            document.put("log_duration_seconds", i / 4);
+            document.put("tag", "phone_data");
+            document.put("location", "45.4215,-75.6972");
+            document.put("start_location", "45.4215,-75.6972");
+            document.put("gps_provider", "gps");
+            document.put("speed", 0.0);
+            document.put("speed_kmh", 0.0);
+            document.put("speed_mph", 0.0);
+            document.put("gps_updates", 12);
+            document.put("total_distance_metres", 153.2);
+            document.put("total_distance_km", 0.1532);
+            document.put("total_distance_miles", 0.0952);
+            document.put("light0", light);
+            document.put("pressure0", pressure);
+            document.put("proximity0", 5.0);
+            // Sensor noise well inside the change threshold
+            document.put("accelerometer0", 0.02 + random.nextGaussian() * 0.001);
+            document.put("accelerometer1", 0.05 + random.nextGaussian() * 0.001);
+            document.put("accelerometer2", 9.81 + random.nextGaussian() * 0.001);
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    @Test
+    public void expanderRebuildsTheOriginalRows() throws Exception {
+        SparseDocumentEncoder encoder = new SparseDocumentEncoder(20, EPSILON);
+        SparseDocumentExpander expander = new SparseDocumentExpander();
+
+        for (JSONObject original : slowChangingDocuments(200)) {
+            JSONObject expanded = expander.expand(encoder.encode(original));
+            assertNotNull(expanded);
+
+            Iterator<String> keys = original.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Object value = original.get(key);
+                if (value instanceof Number) {
+                    double delta = ((Number) value).doubleValue() - expanded.getDouble(key);
+                    assertTrue(key + " drifted by " + delta, Math.abs(delta) <= EPSILON);
+                } else {
+                    assertEquals(key, value, expanded.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sparseDocumentsAreLessThanHalfTheSize() throws Exception {
+        SparseDocumentEncoder encoder = new SparseDocumentEncoder(20, EPSILON);
+        long fullSize = 0;
+        long sparseSize = 0;
+
+        for (JSONObject original : slowChangingDocuments(200)) {
+            fullSize += original.toString().length();
+            sparseSize += encoder.encode(original).toString().length();
+        }
+
+        assertTrue("sparse " + sparseSize + " vs full " + fullSize, sparseSize < fullSize / 2);
+    }
+
+    @Test
+    public void deltasBeforeTheFirstKeyframeCantBeExpanded() throws Exception {
+        SparseDocumentEncoder encoder = new SparseDocumentEncoder(20, EPSILON);
+        List<JSONObject> documents = slowChangingDocuments(3);
+        encoder.encode(documents.get(0));
+
+        SparseDocumentExpander expander = new SparseDocumentExpander();
+        assertEquals(null, expander.expand(encoder.encode(documents.get(1))));
+    }
+
+    @Test
+    public void alertsDontDisturbTheRebuiltRow() throws Exception {
+        SparseDocumentEncoder encoder = new SparseDocumentEncoder(20, EPSILON);
+        SparseDocumentExpander expander = new SparseDocumentExpander();
+        List<JSONObject> documents = slowChangingDocuments(3);
+
+        expander.expand(encoder.encode(documents.get(0)));
+        JSONObject alert = new JSONObject().put("alert", "shock").put("tag", "phone_data");
+        assertEquals(alert, expander.expand(alert));
+
+        JSONObject expanded = expander.expand(encoder.encode(documents.get(1)));
+        assertEquals("45.4215,-75.6972", expanded.getString("start_location"));
+    }
+
+    @Test
+    public void oneInEveryIntervalIsAKeyframe() throws Exception {
+        SparseDocumentEncoder encoder = new SparseDocumentEncoder(5, EPSILON);
+        List<JSONObject> documents = slowChangingDocuments(20);
+        for (int i = 0; i < documents.size(); i++) {
+            boolean isKeyframe = encoder.encode(documents.get(i)).getBoolean("keyframe");
+            assertEquals("document " + i, i % 5 == 0, isKeyframe);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesStoreTest {
+
+    private static String[] FIELDS = {"speed", "loudness"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long[] times = new long[100];
+    private float[] values = new float[100];
+
+    // One row every 10ms, speed counts up with the row number
+    private static void fill(TimeSeriesStore store, int rows) {
+        float[] row = new float[FIELDS.length];
+        for (int i = 0; i < rows; i++) {
+            row[0] = i;
+            row[1] = Float.NaN;
+            store.append(i * 10L, row);
+        }
+    }
+
+    @Test
+    public void wraparoundDropsExpiredRows() throws Exception {
+        // Capacity rounds up to 1024 rows, so after 2500 the oldest left is row 1476
+        TimeSeriesStore store = new TimeSeriesStore(folder.newFile(), FIELDS, 1000);
+        fill(store, 2500);
+
+        // Nothing from before the wrap comes back
+        assertEquals(0, store.query(0, 0, 14750, 5, times, values));
+
+        // Buckets of 10000ms: rows 1476-1999 then 2000-2499
+        int points = store.query(0, 0, 99999, 10, times, values);
+        assertEquals(2, points);
+        assertEquals(10000, times[0]);
+        assertEquals((1476 + 1999) / 2f, values[0], 0.001);
+        assertEquals((2000 + 2499) / 2f, values[1], 0.001);
+
+        // A column that never got a reading has nothing to say
+        assertEquals(0, store.query(1, 0, 99999, 10, times, values));
+    }
+
+    @Test
+    public void reopenedFileKeepsItsData() throws Exception {
+        File file = folder.newFile();
+        fill(new TimeSeriesStore(file, FIELDS, 1000), 2500);
+
+        TimeSeriesStore reopened = new TimeSeriesStore(file, FIELDS, 1000);
+        assertEquals(1, reopened.query(0, 24990, 24990, 1, times, values));
+        assertEquals(2499, values[0], 0.001);
+
+        // New rows carry on after the old ones
+        reopened.append(25000, new float[]{5000, Float.NaN});
+        assertEquals(1, reopened.query(0, 25000, 25000, 1, times, values));
+        assertEquals(5000, values[0], 0.001);
+
+        // A different shape starts fresh
+        TimeSeriesStore reshaped = new TimeSeriesStore(file, new String[]{"speed"}, 1000);
+        assertEquals(0, reshaped.query(0, 0, 25000, 10, times, values));
+    }
+
+    @Test
+    public void sixHourQueryIsQuick() throws Exception {
+        // Six hours at the default 250ms interval, ten columns like MainActivity,
+        // filled for eight hours so the buffer has wrapped
+        String[] fields = new String[10];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = "field" + i;
+        }
+        int rows = 6 * 60 * 60 * 4;
+        TimeSeriesStore store = new TimeSeriesStore(folder.newFile(), fields, rows);
+        float[] row = new float[fields.length];
+        int written = 8 * 60 * 60 * 4;
+        for (int i = 0; i < written; i++) {
+            row[0] = (float) Math.sin(i / 100.0);
+            store.append(i * 250L, row);
+        }
+        long end = (written - 1) * 250L;
+        long sixHours = 6 * 60 * 60 * 1000L;
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            int points = store.query(0, end - sixHours, end, 100, times, values);
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(100, points);
+        }
+        assertTrue("6 hour query took " + best / 1000 + "us", best < 50 * 1000 * 1000L);
+    }
+}